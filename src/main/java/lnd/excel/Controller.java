@@ -3,42 +3,82 @@ package lnd.excel;
 import lnd.excel.data.Item;
 import lnd.excel.data.Supplier;
 import lnd.excel.functioninterface.C;
+import lnd.excel.functioninterface.S;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
+import javax.servlet.ServletException;
+import javax.servlet.annotation.MultipartConfig;
+import javax.servlet.annotation.WebInitParam;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * @author linhnguyendinh
  */
-@WebServlet(value = "/test")
+@MultipartConfig
+@WebServlet(value = "/test", initParams = {
+        // opt-in: rendered output cache
+        @WebInitParam(name = "exportCache.enabled", value = "false"),
+        @WebInitParam(name = "exportCache.maxBytes", value = "67108864"),
+        @WebInitParam(name = "exportCache.ttlSeconds", value = "600"),
+        // empty: memory only
+        @WebInitParam(name = "exportCache.diskDir", value = ""),
+        @WebInitParam(name = "exportCache.maxDiskBytes", value = "536870912")
+})
 public class Controller extends HttpServlet {
     /**
      *
      */
     private static final long serialVersionUID = 1L;
 
+    /** rendered output cache, null when disabled */
+    private transient ExportCache exportCache;
+
+    @Override
+    public void init() throws ServletException {
+        if (Boolean.parseBoolean(this.getInitParameter("exportCache.enabled"))) {
+            String diskDir = this.getInitParameter("exportCache.diskDir");
+            this.exportCache = new ExportCache(
+                    Long.parseLong(this.getInitParameter("exportCache.maxBytes")),
+                    Long.parseLong(this.getInitParameter("exportCache.ttlSeconds")) * 1000,
+                    diskDir == null || diskDir.isEmpty()? null: new File(diskDir),
+                    Long.parseLong(this.getInitParameter("exportCache.maxDiskBytes")));
+        }
+    }
+
     public void doGet(HttpServletRequest request, HttpServletResponse response) {
         try {
             List<Item> items = initDataRow(30);
             List<Supplier> sups = initDataCol(20);
+            String title = "This is the header";
+            // fingerprint before writing, the copy functions consume the lists
+            String fingerprint = new ExportCache.Fingerprint()
+                    .add(title)
+                    .add(items, (f, item) -> f.add(item.getItemRef()).add(item.getDesc()).add(item.getQuatity()))
+                    .add(sups, (f, sup) -> f.add(sup.getUnitPrice()).add(sup.getTotalAmount()).add(sup.getOffer())
+                            .add(sup.getSampleSubmited()).add(sup.getRemarks()))
+                    .value();
             // change to test.xls for xls sample
-            this.downloadExcel(response, "test.xls", "test.xls", w -> {
+            this.downloadExcel(request, response, "test.xls", "test.xls", fingerprint, w -> {
                 Sheet sheet = w.getSheetAt(0);
                 // set value by cell name in a sheet
-                FileUtil.cell(sheet, "title").setCellValue("This is the header");
+                FileUtil.cell(sheet, "title").setCellValue(title);
 
                 // copy down a range by name
                 FileUtil.verticalCopyInsertRange(sheet, "row", 0, (range, item) -> {
@@ -64,6 +104,43 @@ public class Controller extends HttpServlet {
         }
     }
 
+    /**
+     * read back a filled test.xlsx: the items (range "row") and the suppliers (range "col")
+     */
+    public void doPost(HttpServletRequest request, HttpServletResponse response) {
+        File upload = null;
+        try (XSSFWorkbook template = new XSSFWorkbook(new FileInputStream(this.getTemplateFile("test.xlsx")))) {
+            upload = File.createTempFile("upload", ".xlsx");
+            Files.copy(request.getPart("file").getInputStream(), upload.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            // the items are inserted down, the count comes from how far "offer" (below the range) moved
+            List<Item> items = new ArrayList<>();
+            new TemplateReader<Item>(template, "row", TemplateReader.Direction.VERTICAL, 0, new TemplateReader.Binding<Item>(Item::new)
+                    .field("itemRef", Item::setItemRef)
+                    .field("desc", Item::setDesc)
+                    .field("quantity", (item, v) -> item.setQuatity(Double.valueOf(v).intValue())))
+                    .countFromName("offer")
+                    .read(upload, items::add);
+
+            // the suppliers are copied to the right, until the first empty one
+            List<Supplier> sups = new ArrayList<>();
+            new TemplateReader<Supplier>(template, "col", TemplateReader.Direction.HORIZONTAL, 0, new TemplateReader.Binding<Supplier>(Supplier::new)
+                    .field("unitPrice", (sup, v) -> sup.setUnitPrice(Double.valueOf(v).intValue()))
+                    .field("totalAmount", (sup, v) -> sup.setTotalAmount(Double.valueOf(v).intValue()))
+                    .field("offer", Supplier::setOffer)
+                    .field("sampleSubmitted", Supplier::setSampleSubmited)
+                    .field("remarks", Supplier::setRemarks))
+                    .read(upload, sups::add);
+
+            response.setContentType("text/plain");
+            response.getWriter().println("items: " + items.size() + ", suppliers: " + sups.size());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (upload != null) upload.delete();
+        }
+    }
+
     /**
      * download excel
      *
@@ -74,9 +151,85 @@ public class Controller extends HttpServlet {
      * @throws Exception
      */
     public void downloadExcel(HttpServletResponse response, String templateName, String responseName, C<Workbook> consumer) throws Exception {
+        try {
+            File templateFile = this.getTemplateFile(templateName);
+            this.writeExcel(templateFile, templateName, consumer, () -> {
+                this.setDownloadHeaders(response, responseName);
+                return response.getOutputStream();
+            });
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * download excel, serve it from the export cache when it's enabled.
+     * the response has an ETag, a request with a matching If-None-Match gets 304 without rendering
+     *
+     * @param request HttpRequest
+     * @param response HttpResponse
+     * @param templateName the template name
+     * @param responseName the response name
+     * @param dataFingerprint the fingerprint of the data written by the consumer (refer {@link ExportCache.Fingerprint}), null to skip the cache
+     * @param consumer handler: write data to workbook before download
+     * @throws Exception
+     */
+    public void downloadExcel(HttpServletRequest request, HttpServletResponse response, String templateName, String responseName,
+                              String dataFingerprint, C<Workbook> consumer) throws Exception {
+        if (this.exportCache == null || dataFingerprint == null) {
+            this.downloadExcel(response, templateName, responseName, consumer);
+            return;
+        }
+        try {
+            File templateFile = this.getTemplateFile(templateName);
+            String templateVersion = templateFile.lastModified() + "-" + templateFile.length();
+            String key = ExportCache.key(templateName, templateVersion, dataFingerprint);
+            String etag = ExportCache.etag(key);
+
+            if (matchEtag(request.getHeader("If-None-Match"), etag)) {
+                response.setHeader("ETag", etag);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            byte[] content = this.exportCache.get(key);
+            if (content == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                this.writeExcel(templateFile, templateName, consumer, () -> out);
+                content = out.toByteArray();
+                this.exportCache.put(key, content);
+            }
+
+            // the ETag only goes with a rendered body, a failed render must not be revalidated to 304 later
+            this.setDownloadHeaders(response, responseName);
+            response.setHeader("ETag", etag);
+            response.setContentLength(content.length);
+            response.getOutputStream().write(content);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (URISyntaxException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * open the template, write data to it then write the workbook to the output
+     *
+     * @param templateFile the template file
+     * @param templateName the template name
+     * @param consumer handler: write data to workbook
+     * @param output the output, opened after the handler
+     * @throws Exception
+     */
+    private void writeExcel(File templateFile, String templateName, C<Workbook> consumer, S<OutputStream> output) throws Exception {
         Workbook workbook = null;
         try {
-            File templateFile = new File(this.getClass().getClassLoader().getResource(templateName).toURI());
             FileInputStream inputStream = new FileInputStream(templateFile);
             if (templateName.endsWith("xlsx")) {
                 workbook = new XSSFWorkbook(inputStream);
@@ -89,15 +242,7 @@ public class Controller extends HttpServlet {
             // handler: write data to workbook
             consumer.accept(workbook);
 
-            response.setContentType("application/pdf");
-            response.setHeader("Content-Disposition", "attachment; filename=" + responseName);
-            workbook.write(response.getOutputStream()); // Write workbook to response.
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            XlsxWriter.write(workbook, output.get()); // Write workbook to output.
         } finally {
             try {
                 if (workbook != null) workbook.close();
@@ -107,6 +252,32 @@ public class Controller extends HttpServlet {
         }
     }
 
+    private File getTemplateFile(String templateName) throws URISyntaxException {
+        return new File(this.getClass().getClassLoader().getResource(templateName).toURI());
+    }
+
+    private void setDownloadHeaders(HttpServletResponse response, String responseName) {
+        response.setContentType("application/pdf");
+        response.setHeader("Content-Disposition", "attachment; filename=" + responseName);
+    }
+
+    /**
+     * check the If-None-Match header against the ETag
+     *
+     * @param ifNoneMatch the If-None-Match header value
+     * @param etag the ETag
+     * @return true when one of the tags matches
+     */
+    private static boolean matchEtag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String tag: ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
     /**
      * init items data (rows data)
      *
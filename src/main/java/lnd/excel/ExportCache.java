@@ -0,0 +1,437 @@
+package lnd.excel;
+
+import lnd.excel.functioninterface.BiC;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of rendered excel files, keyed by template version and data fingerprint.
+ * The content is kept gzip compressed in memory (size bounded, least recently used evicted first),
+ * entries expire after the ttl. An optional disk directory keeps the entries until they expire,
+ * it's bounded too: each put sweeps the expired entries, the leftover temp files, then the oldest entries over the size.
+ *
+ * @author linhnguyendinh
+ */
+public class ExportCache {
+    /** age of a temp file after which it's considered left by a crash, in milliseconds */
+    private static final long TEMP_FILE_MAX_AGE = 10 * 60 * 1000;
+
+    /** max total compressed bytes kept in memory */
+    private final long maxBytes;
+    /** time to live of an entry, in milliseconds */
+    private final long ttlMillis;
+    /** the disk tier directory, null when disabled */
+    private final File diskDir;
+    /** max total compressed bytes kept in the disk directory */
+    private final long maxDiskBytes;
+    /** lock of the disk directory sweep */
+    private final Object diskLock = new Object();
+    /** entries in access order, the eldest is evicted first */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** total compressed bytes kept in memory */
+    private long size;
+
+    /**
+     * @param maxBytes max total compressed bytes kept in memory
+     * @param ttlMillis time to live of an entry, in milliseconds
+     * @param diskDir the disk tier directory, null to disable the disk tier
+     * @param maxDiskBytes max total compressed bytes kept in the disk directory
+     */
+    public ExportCache(long maxBytes, long ttlMillis, File diskDir, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.diskDir = diskDir;
+        this.maxDiskBytes = maxDiskBytes;
+        if (diskDir != null) {
+            if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+                throw new IllegalArgumentException("can not create cache directory: " + diskDir);
+            }
+            // clean up the entries left by a previous run
+            this.sweepDisk(System.currentTimeMillis(), 0);
+        }
+    }
+
+    /**
+     * memory only cache
+     *
+     * @param maxBytes max total compressed bytes kept in memory
+     * @param ttlMillis time to live of an entry, in milliseconds
+     */
+    public ExportCache(long maxBytes, long ttlMillis) {
+        this(maxBytes, ttlMillis, null, 0);
+    }
+
+    /**
+     * build the cache key
+     *
+     * @param templateName the template name
+     * @param templateVersion the template version (e.g. last modified time of the template file)
+     * @param dataFingerprint the fingerprint of the data written to the template
+     * @return the cache key
+     */
+    public static String key(String templateName, String templateVersion, String dataFingerprint) {
+        return templateName + "|" + templateVersion + "|" + dataFingerprint;
+    }
+
+    /**
+     * the ETag of a cache key
+     *
+     * @param key the cache key
+     * @return the quoted ETag
+     */
+    public static String etag(String key) {
+        return "\"" + sha256(key) + "\"";
+    }
+
+    /**
+     * compute the fingerprint of the data written to a template.
+     * only plain values are accepted (refer {@link Fingerprint#add(Object)}), use {@link Fingerprint} for other types
+     *
+     * @param datas the data (values, lists of values)
+     * @return the fingerprint
+     */
+    public static String fingerprint(Object... datas) {
+        Fingerprint fingerprint = new Fingerprint();
+        for (Object data: datas) {
+            fingerprint.add(data);
+        }
+        return fingerprint.value();
+    }
+
+    /**
+     * get the content of an entry
+     *
+     * @param key the cache key
+     * @return the uncompressed content, null when it's not cached or expired
+     */
+    public byte[] get(String key) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+            if (entry != null && entry.isExpired(now)) {
+                this.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            entry = this.readDisk(key, now);
+            if (entry == null) return null;
+            this.putMemory(key, entry);
+        }
+        try {
+            return gunzip(entry.content);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * put the content of an entry
+     *
+     * @param key the cache key
+     * @param content the uncompressed content
+     */
+    public void put(String key, byte[] content) {
+        try {
+            Entry entry = new Entry(gzip(content), System.currentTimeMillis());
+            this.putMemory(key, entry);
+            this.writeDisk(key, entry);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * remove all entries in memory (the disk tier expires by itself)
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.size = 0;
+    }
+
+    private synchronized void putMemory(String key, Entry entry) {
+        // entry is bigger than the whole cache, keep it on disk only
+        if (entry.content.length > this.maxBytes) return;
+        this.remove(key);
+        this.entries.put(key, entry);
+        this.size += entry.content.length;
+        // evict the least recently used entries
+        Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+        while (this.size > this.maxBytes && iterator.hasNext()) {
+            this.size -= iterator.next().getValue().content.length;
+            iterator.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = this.entries.remove(key);
+        if (old != null) this.size -= old.content.length;
+    }
+
+    private Entry readDisk(String key, long now) {
+        if (this.diskDir == null) return null;
+        File file = this.diskFile(key);
+        if (!file.isFile()) return null;
+        Entry entry = new Entry(null, file.lastModified());
+        if (entry.isExpired(now)) {
+            file.delete();
+            return null;
+        }
+        try {
+            return new Entry(Files.readAllBytes(file.toPath()), entry.createdAt);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, Entry entry) throws IOException {
+        if (this.diskDir == null) return;
+        // entry is bigger than the whole disk tier, keep it in memory only
+        if (entry.content.length > this.maxDiskBytes) return;
+        this.sweepDisk(entry.createdAt, entry.content.length);
+        File file = this.diskFile(key);
+        // write to a temp file then move, readers never see a partial file
+        File temp = File.createTempFile(file.getName(), ".tmp", this.diskDir);
+        try {
+            Files.write(temp.toPath(), entry.content);
+            temp.setLastModified(entry.createdAt);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * delete the expired entries and the temp files left by a crash, then the oldest entries
+     * until there's room for the incoming entry under maxDiskBytes
+     *
+     * @param now the current time, in milliseconds
+     * @param incoming the size of the entry about to be written
+     */
+    private void sweepDisk(long now, long incoming) {
+        synchronized (this.diskLock) {
+            File[] files = this.diskDir.listFiles();
+            if (files == null) return;
+            List<File> entryFiles = new ArrayList<>();
+            long diskSize = 0;
+            for (File file: files) {
+                if (!file.isFile()) continue;
+                long age = now - file.lastModified();
+                if (file.getName().endsWith(".tmp")) {
+                    // a temp file is moved right after it's written, an old one is left by a crash
+                    if (age > TEMP_FILE_MAX_AGE) file.delete();
+                } else if (file.getName().endsWith(".gz")) {
+                    if (age > this.ttlMillis) {
+                        file.delete();
+                    } else {
+                        entryFiles.add(file);
+                        diskSize += file.length();
+                    }
+                }
+            }
+            if (diskSize + incoming <= this.maxDiskBytes) return;
+            // oldest first
+            entryFiles.sort(Comparator.comparingLong(File::lastModified));
+            for (File file: entryFiles) {
+                if (diskSize + incoming <= this.maxDiskBytes) break;
+                long length = file.length();
+                if (file.delete()) diskSize -= length;
+            }
+        }
+    }
+
+    private File diskFile(String key) {
+        return new File(this.diskDir, sha256(key) + ".gz");
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (OutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length * 2);
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(content))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String sha256(String value) {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b: digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * SHA-256 digest of the data written to a template.
+     * each value is written with a type tag and a length prefix, so different data never share the same input
+     */
+    public static class Fingerprint {
+        private static final byte NULL = 0;
+        private static final byte STRING = 1;
+        private static final byte INTEGER = 2;
+        private static final byte DECIMAL = 3;
+        private static final byte BOOLEAN = 4;
+        private static final byte CHARACTER = 5;
+        private static final byte LIST = 6;
+        private static final byte BIG_NUMBER = 7;
+
+        private final MessageDigest digest;
+
+        public Fingerprint() {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * add a value: null, String, Character, Boolean, Number (primitive wrappers, BigInteger, BigDecimal),
+         * Enum, Date or a List of those
+         *
+         * @param value the value
+         * @return this fingerprint
+         * @throws IllegalArgumentException for other types, they have no content to digest
+         */
+        public Fingerprint add(Object value) {
+            if (value == null) {
+                this.digest.update(NULL);
+            } else if (value instanceof String) {
+                this.addString(STRING, (String) value);
+            } else if (value instanceof Character) {
+                this.digest.update(CHARACTER);
+                this.addLong((Character) value);
+            } else if (value instanceof Boolean) {
+                this.digest.update(BOOLEAN);
+                this.digest.update((byte) ((Boolean) value? 1: 0));
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                this.digest.update(INTEGER);
+                this.addLong(((Number) value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                this.digest.update(DECIMAL);
+                this.addLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof BigInteger || value instanceof BigDecimal) {
+                this.addString(BIG_NUMBER, value.toString());
+            } else if (value instanceof Enum) {
+                this.addString(STRING, ((Enum<?>) value).getDeclaringClass().getName() + "." + ((Enum<?>) value).name());
+            } else if (value instanceof Date) {
+                this.digest.update(INTEGER);
+                this.addLong(((Date) value).getTime());
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                this.digest.update(LIST);
+                this.addLong(list.size());
+                for (Object element: list) {
+                    this.add(element);
+                }
+            } else {
+                throw new IllegalArgumentException("can not fingerprint " + value.getClass().getName() + ", add its fields with a serializer");
+            }
+            return this;
+        }
+
+        /**
+         * add a list of objects, the serializer adds the fields of each object
+         *
+         * @param datas the objects
+         * @param serializer add the fields of an object to the fingerprint
+         * @param <T> the type of the objects
+         * @return this fingerprint
+         */
+        public <T> Fingerprint add(List<T> datas, BiC<Fingerprint, T> serializer) throws Exception {
+            this.digest.update(LIST);
+            this.addLong(datas.size());
+            for (T data: datas) {
+                if (data == null) {
+                    this.digest.update(NULL);
+                } else {
+                    this.digest.update(LIST);
+                    serializer.accept(this, data);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * @return the hex digest, the fingerprint can't be used after
+         */
+        public String value() {
+            return hex(this.digest.digest());
+        }
+
+        private void addString(byte tag, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            this.digest.update(tag);
+            this.addLong(bytes.length);
+            this.digest.update(bytes);
+        }
+
+        private void addLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                this.digest.update((byte) (value >>> shift));
+            }
+        }
+    }
+
+    /**
+     * a cached content
+     */
+    private class Entry {
+        /** gzip compressed content */
+        private final byte[] content;
+        /** created time, in milliseconds */
+        private final long createdAt;
+
+        private Entry(byte[] content, long createdAt) {
+            this.content = content;
+            this.createdAt = createdAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - this.createdAt > ExportCache.this.ttlMillis;
+        }
+    }
+}
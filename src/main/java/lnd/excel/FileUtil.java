@@ -217,9 +217,14 @@ public class FileUtil {
 
         T firstData = datas.remove(0);
         Range originalRange = new Range(sheet, 0, 0, name);
+        // make room for all clones with one shiftRows instead of one per clone
+        if (copyInsert) {
+            FileUtil.shiftRowsBelow(originalRange, addOffsetY, datas.size());
+        }
         int addOffset = addOffsetY;
         for (T data: datas) {
-            Range rangeClone = copyInsert? originalRange.verticalCopyInsert(addOffset): originalRange.verticalCopy(addOffset);
+            // rows below are already shifted, so the clone is pasted without insert
+            Range rangeClone = originalRange.verticalCopy(addOffset);
             // handle printer
             consumer.accept(rangeClone, data);
             addOffset = rangeClone.getShiftY();
@@ -228,6 +233,29 @@ public class FileUtil {
         consumer.accept(originalRange, firstData);
     }
 
+    /**
+     * make room below a range for all its clones at once.
+     * the clone k (1 based) starts at shiftY = addOffsetY + k * rowCount of the original range
+     *
+     * @param range the original range
+     * @param addOffsetY the add offset
+     * @param cloneCount number of clones
+     */
+    private static void shiftRowsBelow(Range range, int addOffsetY, int cloneCount) {
+        if (cloneCount <= 0) return;
+        Sheet sheet = range.getSheet();
+        AreaReference area = range.getAreaReference();
+        // row count of original range
+        int rowCount = area.getLastCell().getRow() - area.getFirstCell().getRow() + 1;
+        // the first row index of the first clone
+        int firstCloneRow = area.getLastCell().getRow() + addOffsetY + 1;
+
+        // shift below rows once by the total height of the clones
+        if (firstCloneRow <= sheet.getLastRowNum()) {
+            sheet.shiftRows(firstCloneRow, sheet.getLastRowNum(), cloneCount * rowCount);
+        }
+    }
+
     /**
      * Copy and paste a range to an interval addOffsetX
      *
@@ -286,6 +314,10 @@ public class FileUtil {
 			this.index = index;
 		}
 
+		public Sheet getSheet() {
+			return sheet;
+		}
+
 		public int getShiftY() {
 			return shiftY;
 		}
@@ -0,0 +1,566 @@
+package lnd.excel;
+
+import lnd.excel.functioninterface.BiC;
+import lnd.excel.functioninterface.C;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Read a filled xlsx back into objects, the inverse of {@link FileUtil#verticalCopyRange} and {@link FileUtil#horizontalCopyRange}.
+ * The range and the cell of each field are looked up in the defined names of the uploaded file, so the positions
+ * moved by {@link FileUtil#verticalCopyInsertRange} are followed; the names missing in the upload fall back to the template.
+ * The number of copies is given by {@link #count(int)}, or inferred by {@link #countFromName(String)} for the output
+ * of {@link FileUtil#verticalCopyInsertRange}, otherwise the reading stops at the first empty copy.
+ * The uploaded file is parsed with the SAX event API, the cells aren't kept once their object is emitted.
+ * The shared strings table of the upload is still loaded in memory ({@link ReadOnlySharedStringsTable}),
+ * so free text typed by the customers grows the memory use with the row count.
+ * Every sheet is read with the same layout (e.g. sheets created by {@link FileUtil#copySheet}).
+ *
+ * @author linhnguyendinh
+ * @param <T> the type of the objects
+ */
+public class TemplateReader<T> {
+
+    /**
+     * the copy direction of the range
+     */
+    public enum Direction {
+        /** copied down, refer {@link FileUtil#verticalCopyRange} */
+        VERTICAL,
+        /** copied to the right, refer {@link FileUtil#horizontalCopyRange} */
+        HORIZONTAL
+    }
+
+    private final Direction direction;
+    /** the add offset used when copying the range */
+    private final int addOffset;
+    /** the range name */
+    private final String name;
+    /** the range in the template */
+    private final AreaReference templateArea;
+    /** cell of each field in the template */
+    private final Map<String, CellReference> templateFields = new LinkedHashMap<>();
+    private final Binding<T> binding;
+    /** the template workbook, resolve the names */
+    private final Workbook template;
+    /** the number of copies, -1 when unknown */
+    private int count = -1;
+    /** the name of a cell below the inserted copies, the count is inferred from how far it moved */
+    private String countName;
+    /** the cell of countName in the template */
+    private CellReference templateCountCell;
+
+    /**
+     * @param template the template workbook, only used to resolve the names
+     * @param name the named range (refer {@link Name}) copied for each object
+     * @param direction the copy direction of the range
+     * @param addOffset the add offset used when copying the range
+     * @param binding the object factory and the field setters, the field names are the cell names inside the range
+     */
+    public TemplateReader(Workbook template, String name, Direction direction, int addOffset, Binding<T> binding) {
+        Name n = template.getName(name);
+        if (n == null) {
+            throw new IllegalArgumentException("name is not defined in the template: " + name);
+        }
+        this.templateArea = new AreaReference(n.getRefersToFormula(), null);
+        this.name = name;
+        this.direction = direction;
+        this.addOffset = addOffset;
+        this.binding = binding;
+        this.template = template;
+
+        for (String field: binding.setters.keySet()) {
+            CellReference cellReference = templateCell(template, field);
+            if (!contains(this.templateArea, cellReference)) {
+                throw new IllegalArgumentException("cell " + field + " is outside of the range " + name);
+            }
+            this.templateFields.put(field, cellReference);
+        }
+    }
+
+    /**
+     * read exactly this number of copies on each sheet, the empty ones give objects without any field set
+     *
+     * @param count the number of copies
+     * @return this reader
+     */
+    public TemplateReader<T> count(int count) {
+        this.count = count;
+        this.countName = null;
+        return this;
+    }
+
+    /**
+     * infer the number of copies from a named cell below the range.
+     * only for the output of {@link FileUtil#verticalCopyInsertRange}: the inserted copies move it by (count - 1) * the range size.
+     * {@link FileUtil#verticalCopyRange} and {@link FileUtil#horizontalCopyRange} don't insert, the cell never moves
+     * and the count would always be 1, use {@link #count(int)} or the stop at the first empty copy for them
+     *
+     * @param name the cell name (refer {@link Name}) in the template
+     * @return this reader
+     * @throws IllegalArgumentException for a horizontal range, or a cell which isn't below the range
+     */
+    public TemplateReader<T> countFromName(String name) {
+        if (this.direction != Direction.VERTICAL) {
+            throw new IllegalArgumentException("the count can't be inferred for a horizontal range, columns are never inserted: " + this.name);
+        }
+        CellReference cellReference = templateCell(this.template, name);
+        boolean after = cellReference.getRow() > this.templateArea.getLastCell().getRow();
+        if (!after) {
+            throw new IllegalArgumentException("cell " + name + " is not below the range " + this.name);
+        }
+        this.countName = name;
+        this.templateCountCell = cellReference;
+        this.count = -1;
+        return this;
+    }
+
+    /**
+     * read all sheets of the file, one by one
+     *
+     * @param file the xlsx file
+     * @param consumer the object handler, called in the order of the sheets and the ranges
+     */
+    public void read(File file, C<T> consumer) throws Exception {
+        this.read(file, consumer, false);
+    }
+
+    /**
+     * read all sheets of the file
+     *
+     * @param file the xlsx file
+     * @param consumer the object handler, it must be thread safe when parallel
+     * @param parallel read the sheets in parallel (one thread per processor)
+     */
+    public void read(File file, C<T> consumer, boolean parallel) throws Exception {
+        OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+        try {
+            this.read(pkg, consumer, parallel);
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    /**
+     * read all sheets of the uploaded stream, one by one.
+     * the zip is buffered in memory, prefer {@link #read(File, C)} for big uploads
+     *
+     * @param inputStream the xlsx content
+     * @param consumer the object handler, called in the order of the sheets and the ranges
+     */
+    public void read(InputStream inputStream, C<T> consumer) throws Exception {
+        OPCPackage pkg = OPCPackage.open(inputStream);
+        try {
+            this.read(pkg, consumer, false);
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    private void read(OPCPackage pkg, C<T> consumer, boolean parallel) throws Exception {
+        XSSFReader reader = new XSSFReader(pkg);
+        ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+        StylesTable styles = reader.getStylesTable();
+        DefinedNames names = new DefinedNames();
+        try (InputStream workbook = reader.getWorkbookData()) {
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(names);
+            parser.parse(new InputSource(workbook));
+        }
+        Iterator<InputStream> sheets = reader.getSheetsData();
+        int sheetIndex = 0;
+
+        if (!parallel) {
+            while (sheets.hasNext()) {
+                Layout layout = new Layout(names, sheetIndex++);
+                try (InputStream sheet = sheets.next()) {
+                    this.readSheet(sheet, layout, styles, strings, consumer);
+                }
+            }
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // limit the opened sheet streams
+        Semaphore permits = new Semaphore(threads * 2);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            while (sheets.hasNext()) {
+                Layout layout = new Layout(names, sheetIndex++);
+                permits.acquire();
+                InputStream sheet = sheets.next();
+                futures.add(executor.submit(() -> {
+                    try (InputStream in = sheet) {
+                        this.readSheet(in, layout, styles, strings, consumer);
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future: futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception? (Exception) e.getCause(): e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void readSheet(InputStream sheet, Layout layout, StylesTable styles, ReadOnlySharedStringsTable strings, C<T> consumer) throws Exception {
+        SheetHandler handler = new SheetHandler(layout, consumer);
+        XMLReader parser = SAXHelper.newXMLReader();
+        // a new formatter per sheet, DataFormatter isn't thread safe
+        parser.setContentHandler(new XSSFSheetXMLHandler(styles, null, strings, handler, new RawNumberFormatter(), false));
+        try {
+            parser.parse(new InputSource(sheet));
+            handler.flush();
+        } catch (StopException e) {
+            // all copies read, the rest of the sheet isn't read
+        } catch (ConsumerException e) {
+            throw e.exception;
+        }
+    }
+
+    /**
+     * the cell of a name in the template, the name itself when it's a cell reference (like {@link FileUtil#cell(org.apache.poi.ss.usermodel.Sheet, String)})
+     */
+    private static CellReference templateCell(Workbook template, String name) {
+        Name n = template.getName(name);
+        return new CellReference(n == null? name: n.getRefersToFormula());
+    }
+
+    private static boolean contains(AreaReference area, CellReference cell) {
+        return area.getFirstCell().getRow() <= cell.getRow() && cell.getRow() <= area.getLastCell().getRow()
+                && area.getFirstCell().getCol() <= cell.getCol() && cell.getCol() <= area.getLastCell().getCol();
+    }
+
+    private static String key(int row, int col) {
+        return new CellReference(row, col).formatAsString();
+    }
+
+    /**
+     * the positions of the range, its fields and the number of copies in a sheet of the uploaded file
+     */
+    private class Layout {
+        private final int firstRow;
+        private final int lastRow;
+        private final int firstCol;
+        private final int lastCol;
+        /** row count (vertical) or column count (horizontal) of the range */
+        private final int span;
+        /** field name by cell reference in the first copy (e.g. "B5") */
+        private final Map<String, String> fieldByCell = new HashMap<>();
+        /** the number of copies, -1 when unknown */
+        private final int count;
+
+        private Layout(DefinedNames names, int sheetIndex) {
+            AreaReference area = names.area(name, sheetIndex);
+            if (area == null) area = templateArea;
+            this.firstRow = area.getFirstCell().getRow();
+            this.lastRow = area.getLastCell().getRow();
+            this.firstCol = area.getFirstCell().getCol();
+            this.lastCol = area.getLastCell().getCol();
+            this.span = direction == Direction.VERTICAL? this.lastRow - this.firstRow + 1: this.lastCol - this.firstCol + 1;
+            // how far the range moved from the template
+            int shiftRow = this.firstRow - templateArea.getFirstCell().getRow();
+            int shiftCol = this.firstCol - templateArea.getFirstCell().getCol();
+
+            for (Map.Entry<String, CellReference> field: templateFields.entrySet()) {
+                CellReference cell = names.cell(field.getKey(), sheetIndex);
+                if (cell == null) {
+                    cell = new CellReference(field.getValue().getRow() + shiftRow, field.getValue().getCol() + shiftCol);
+                }
+                if (!contains(area, cell)) {
+                    throw new IllegalArgumentException("cell " + field.getKey() + " is outside of the range " + name + " in the uploaded file");
+                }
+                this.fieldByCell.put(key(cell.getRow(), cell.getCol()), field.getKey());
+            }
+
+            if (countName == null) {
+                this.count = TemplateReader.this.count;
+                return;
+            }
+            CellReference countCell = names.cell(countName, sheetIndex);
+            if (countCell == null) {
+                throw new IllegalArgumentException("name is not defined in the uploaded file: " + countName);
+            }
+            int moved = countCell.getRow() - templateCountCell.getRow() - shiftRow;
+            if (moved < 0 || moved % this.span != 0) {
+                throw new IllegalArgumentException("can not infer the number of copies from " + countName + ", it moved by " + moved);
+            }
+            this.count = moved / this.span + 1;
+        }
+
+        /**
+         * the record index of a cell, -1 when the cell isn't in a copy of the range
+         */
+        private int recordIndex(int row, int col) {
+            int offset = direction == Direction.VERTICAL? row - this.firstRow: col - this.firstCol;
+            if (direction == Direction.VERTICAL? col < this.firstCol || col > this.lastCol: row < this.firstRow || row > this.lastRow) return -1;
+            if (offset < 0) return -1;
+            if (offset < this.span) return 0;
+            // the copy k starts at addOffset + k * span
+            offset -= addOffset;
+            if (offset < this.span) return -1;
+            int k = offset / this.span;
+            return this.count >= 0 && k >= this.count? -1: k;
+        }
+
+        /**
+         * the field of a cell in the copy k of the range
+         */
+        private String field(int row, int col, int k) {
+            int shift = k == 0? 0: addOffset + k * this.span;
+            return this.fieldByCell.get(direction == Direction.VERTICAL? key(row - shift, col): key(row, col - shift));
+        }
+
+        /**
+         * the last row of the copy k of the range
+         */
+        private int lastRowOf(int k) {
+            if (direction == Direction.HORIZONTAL) return this.lastRow;
+            return this.lastRow + (k == 0? 0: addOffset + k * this.span);
+        }
+    }
+
+    /**
+     * the defined names of the uploaded workbook (workbook.xml), global or local to a sheet
+     */
+    private static class DefinedNames extends DefaultHandler {
+        /** refers to formula by name, the local names are keyed by "sheetIndex!name" */
+        private final Map<String, String> refersTo = new HashMap<>();
+        private String current;
+        private StringBuilder text;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (!"definedName".equals(localName.isEmpty()? qName: localName)) return;
+            String localSheetId = attributes.getValue("localSheetId");
+            this.current = localSheetId == null? attributes.getValue("name"): localSheetId + "!" + attributes.getValue("name");
+            this.text = new StringBuilder();
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (this.text != null) this.text.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (this.text == null) return;
+            this.refersTo.put(this.current, this.text.toString());
+            this.current = null;
+            this.text = null;
+        }
+
+        private String refersTo(String name, int sheetIndex) {
+            String formula = this.refersTo.get(sheetIndex + "!" + name);
+            return formula != null? formula: this.refersTo.get(name);
+        }
+
+        /**
+         * @return the area of a name, null when it isn't defined or doesn't refer to an area (e.g. #REF!)
+         */
+        private AreaReference area(String name, int sheetIndex) {
+            String formula = this.refersTo(name, sheetIndex);
+            if (formula == null) return null;
+            try {
+                return new AreaReference(formula, null);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return the cell of a name, null when it isn't defined or doesn't refer to a cell (e.g. #REF!)
+         */
+        private CellReference cell(String name, int sheetIndex) {
+            String formula = this.refersTo(name, sheetIndex);
+            if (formula == null) return null;
+            try {
+                return new CellReference(formula);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * collect the cells of the copies of the range, emit an object when its copy is fully read
+     */
+    private class SheetHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final Layout layout;
+        private final C<T> consumer;
+        /** values by field name, by record index */
+        private final TreeMap<Integer, Map<String, String>> pending = new TreeMap<>();
+        /** the next record index to emit */
+        private int next;
+
+        private SheetHandler(Layout layout, C<T> consumer) {
+            this.layout = layout;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            // emit the records ending at this row
+            while (!this.isComplete() && this.layout.lastRowOf(this.next) <= rowNum) {
+                // without a count, stop at the first empty one
+                if (!this.emitNext()) throw new StopException();
+            }
+            if (this.isComplete()) throw new StopException();
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            if (cellReference == null || formattedValue == null || formattedValue.isEmpty()) return;
+            CellReference reference = new CellReference(cellReference);
+            int k = this.layout.recordIndex(reference.getRow(), reference.getCol());
+            if (k < this.next) return;
+            String field = this.layout.field(reference.getRow(), reference.getCol(), k);
+            if (field == null) return;
+            this.pending.computeIfAbsent(k, i -> new LinkedHashMap<>()).put(field, formattedValue);
+        }
+
+        @Override
+        public void headerFooter(String text, boolean isHeader, String tagName) {
+        }
+
+        /**
+         * emit the remaining records at the end of the sheet
+         */
+        private void flush() {
+            while (!this.isComplete() && this.emitNext()) {
+                // until the count, or the first empty record without a count
+            }
+        }
+
+        private boolean isComplete() {
+            return this.layout.count >= 0 && this.next >= this.layout.count;
+        }
+
+        /**
+         * emit the next record. it's empty when no cell was read: emitted with a count, otherwise the end of the copies
+         *
+         * @return false when the record is empty and there's no count
+         */
+        private boolean emitNext() {
+            Map<String, String> values = this.pending.remove(this.next);
+            if (values == null) {
+                if (this.layout.count < 0) return false;
+                values = new HashMap<>();
+            }
+            this.next++;
+            try {
+                T object = binding.factory.get();
+                for (Map.Entry<String, String> value: values.entrySet()) {
+                    binding.setters.get(value.getKey()).accept(object, value.getValue());
+                }
+                this.consumer.accept(object);
+            } catch (Exception e) {
+                throw new ConsumerException(e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * the object factory and the field setters.
+     * the setters receive the cell text, numbers are unformatted (e.g. "1234.5")
+     *
+     * @param <T> the type of the objects
+     */
+    public static class Binding<T> {
+        private final Supplier<T> factory;
+        private final Map<String, BiC<T, String>> setters = new LinkedHashMap<>();
+
+        /**
+         * @param factory create an empty object
+         */
+        public Binding(Supplier<T> factory) {
+            this.factory = factory;
+        }
+
+        /**
+         * bind a cell name to a setter
+         *
+         * @param name the cell name (refer {@link Name}) inside the range
+         * @param setter the setter
+         * @return this binding
+         */
+        public Binding<T> field(String name, BiC<T, String> setter) {
+            this.setters.put(name, setter);
+            return this;
+        }
+    }
+
+    /**
+     * format numeric cells as their raw value, so the setters can parse them whatever the cell format is
+     */
+    private static class RawNumberFormatter extends DataFormatter {
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString, boolean use1904Windowing) {
+            return NumberToTextConverter.toText(value);
+        }
+    }
+
+    /**
+     * stop parsing a sheet when all copies are read
+     */
+    private static class StopException extends RuntimeException {
+        private StopException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * carry an exception of the setters or the consumer through the SAX parser
+     */
+    private static class ConsumerException extends RuntimeException {
+        private final Exception exception;
+
+        private ConsumerException(Exception exception) {
+            super(exception);
+            this.exception = exception;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package lnd.excel;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Write xlsx workbook with the zip entries deflated in parallel.
+ * POI marshals the package parts one by one into a capturing zip stream (no compression). Each part is submitted
+ * to the executor as soon as POI closes its entry, so deflating overlaps with marshalling the next parts.
+ * Deflated parts are written to the output in POI's order, except styles, shared strings and the workbook parts
+ * which are written last. At most maxPending parts wait for their turn, POI is blocked until the oldest is written.
+ * Other workbook types (xls, streaming) are written by {@link Workbook#write(OutputStream)}.
+ *
+ * @author linhnguyendinh
+ */
+public class XlsxWriter {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    /** version needed to extract: deflate */
+    private static final int VERSION = 20;
+    /** general purpose flag: names are UTF-8 */
+    private static final int FLAG_UTF8 = 0x0800;
+
+    /**
+     * write workbook to the output, deflate on the common pool
+     *
+     * @param workbook the workbook
+     * @param out the output
+     * @throws IOException
+     */
+    public static void write(Workbook workbook, OutputStream out) throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        XlsxWriter.write(workbook, out, pool, pool.getParallelism() * 2);
+    }
+
+    /**
+     * write workbook to the output
+     *
+     * @param workbook the workbook
+     * @param out the output
+     * @param executor the executor deflating the parts
+     * @param maxPending max parts submitted or deflated but not written yet
+     * @throws IOException
+     */
+    public static void write(Workbook workbook, OutputStream out, ExecutorService executor, int maxPending) throws IOException {
+        if (!(workbook instanceof XSSFWorkbook)) {
+            workbook.write(out);
+            return;
+        }
+
+        // POI writes to the given ZipOutputStream, each closed entry is deflated and written while POI goes on
+        CapturingZipOutputStream capture = new CapturingZipOutputStream(out, executor, Math.max(1, maxPending));
+        try {
+            workbook.write(capture);
+            capture.complete();
+        } finally {
+            capture.cancel();
+        }
+        out.flush();
+    }
+
+    /**
+     * a package part (zip entry)
+     */
+    private static class Part {
+        private final String name;
+        private final long time;
+        /** capture order */
+        private final int index;
+        /** styles, shared strings and the workbook parts are written last */
+        private final boolean deferred;
+        private Buffer data = new Buffer();
+        private byte[] compressed;
+        private long crc;
+        private long size;
+
+        private Part(String name, long time, int index) {
+            this.name = name;
+            this.time = time == -1 ? System.currentTimeMillis() : time;
+            this.index = index;
+            this.deferred = name.equals("xl/styles.xml") || name.equals("xl/sharedStrings.xml")
+                    || name.equals("xl/workbook.xml") || name.equals("xl/_rels/workbook.xml.rels");
+        }
+
+        /**
+         * the write order of a deferred part: styles, shared strings then the workbook parts
+         */
+        private int getDeferredRank() {
+            if (this.name.equals("xl/styles.xml")) return 0;
+            if (this.name.equals("xl/sharedStrings.xml")) return 1;
+            return 2;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        private Part deflate() {
+            Buffer raw = this.data;
+            this.data = null;
+            CRC32 crc32 = new CRC32();
+            crc32.update(raw.array(), 0, raw.size());
+            this.crc = crc32.getValue();
+            this.size = raw.size();
+
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(raw.array(), 0, raw.size());
+                deflater.finish();
+                ByteArrayOutputStream compressedOut = new ByteArrayOutputStream(raw.size() / 4 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    compressedOut.write(buffer, 0, count);
+                }
+                this.compressed = compressedOut.toByteArray();
+            } finally {
+                deflater.end();
+            }
+            return this;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream exposing its buffer, the part is deflated without copying it
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        private byte[] array() {
+            return this.buf;
+        }
+    }
+
+    /**
+     * ZipOutputStream deflating the closed entries on the executor and writing them on the underlying stream.
+     * the underlying stream is written only from the thread calling POI
+     */
+    private static class CapturingZipOutputStream extends ZipOutputStream {
+        private final ExecutorService executor;
+        private final int maxPending;
+        private final ZipAssembler assembler;
+        /** submitted parts, in POI's order */
+        private final Deque<Future<Part>> pending = new ArrayDeque<>();
+        /** deflated parts written after all the others */
+        private final List<Part> deferred = new ArrayList<>();
+        private Part current;
+        private int count;
+
+        private CapturingZipOutputStream(OutputStream out, ExecutorService executor, int maxPending) {
+            super(out);
+            this.executor = executor;
+            this.maxPending = maxPending;
+            this.assembler = new ZipAssembler(out);
+        }
+
+        @Override
+        public void putNextEntry(ZipEntry entry) throws IOException {
+            this.closeEntry();
+            this.current = new Part(entry.getName(), entry.getTime(), this.count++);
+        }
+
+        @Override
+        public void closeEntry() throws IOException {
+            if (this.current == null) return;
+            Part part = this.current;
+            this.current = null;
+            this.pending.add(this.executor.submit(part::deflate));
+            // write what's already deflated, wait for the oldest when too many are pending
+            this.drain(false);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.ensureEntry();
+            this.current.data.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.ensureEntry();
+            this.current.data.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            // the output is flushed once the zip is complete
+        }
+
+        @Override
+        public void finish() throws IOException {
+            this.closeEntry();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // keep the underlying stream open, the deferred parts and the central directory are written after
+            this.finish();
+            this.def.end();
+        }
+
+        /**
+         * write the remaining parts, the deferred parts then the central directory
+         */
+        private void complete() throws IOException {
+            this.closeEntry();
+            this.drain(true);
+            this.deferred.sort(Comparator.comparingInt(Part::getDeferredRank).thenComparingInt(Part::getIndex));
+            for (Part part: this.deferred) {
+                this.assembler.writeEntry(part);
+            }
+            this.deferred.clear();
+            this.assembler.finish();
+        }
+
+        /**
+         * cancel the parts not deflated yet (POI or the output failed), release the unused deflater
+         */
+        private void cancel() {
+            for (Future<Part> future: this.pending) {
+                future.cancel(false);
+            }
+            this.pending.clear();
+            this.def.end();
+        }
+
+        /**
+         * write the deflated parts in order
+         *
+         * @param all wait for all pending parts, otherwise only until less than maxPending are left
+         */
+        private void drain(boolean all) throws IOException {
+            while (!this.pending.isEmpty()) {
+                Future<Part> head = this.pending.peek();
+                if (!all && !head.isDone() && this.pending.size() < this.maxPending) return;
+                Part part;
+                try {
+                    part = head.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while deflating xlsx parts", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("can not deflate xlsx part", e.getCause());
+                }
+                this.pending.poll();
+                if (part.deferred) {
+                    this.deferred.add(part);
+                } else {
+                    this.assembler.writeEntry(part);
+                }
+            }
+        }
+
+        private void ensureEntry() throws IOException {
+            if (this.current == null) throw new IOException("no current zip entry");
+        }
+    }
+
+    /**
+     * write pre-deflated entries in zip format (no zip64)
+     */
+    private static class ZipAssembler {
+        private final OutputStream out;
+        private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+        private long written;
+        private int entryCount;
+
+        private ZipAssembler(OutputStream out) {
+            this.out = out;
+        }
+
+        private void writeEntry(Part part) throws IOException {
+            if (this.entryCount >= 0xFFFF) {
+                throw new IOException("too many zip entries");
+            }
+            if (part.size > 0xFFFFFFFFL || part.compressed.length > 0xFFFFFFFFL || this.written > 0xFFFFFFFFL) {
+                throw new IOException("zip entry is too large: " + part.name);
+            }
+            byte[] name = part.name.getBytes(StandardCharsets.UTF_8);
+            long offset = this.written;
+            long dosTime = dosTime(part.time);
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream(30 + name.length);
+            writeInt(header, LOCAL_HEADER_SIG);
+            writeShort(header, VERSION);
+            writeShort(header, FLAG_UTF8);
+            writeShort(header, ZipEntry.DEFLATED);
+            writeInt(header, dosTime);
+            writeInt(header, part.crc);
+            writeInt(header, part.compressed.length);
+            writeInt(header, part.size);
+            writeShort(header, name.length);
+            writeShort(header, 0);
+            header.write(name);
+            header.writeTo(this.out);
+            this.out.write(part.compressed);
+            this.written += header.size() + part.compressed.length;
+
+            writeInt(this.centralDirectory, CENTRAL_HEADER_SIG);
+            writeShort(this.centralDirectory, VERSION);
+            writeShort(this.centralDirectory, VERSION);
+            writeShort(this.centralDirectory, FLAG_UTF8);
+            writeShort(this.centralDirectory, ZipEntry.DEFLATED);
+            writeInt(this.centralDirectory, dosTime);
+            writeInt(this.centralDirectory, part.crc);
+            writeInt(this.centralDirectory, part.compressed.length);
+            writeInt(this.centralDirectory, part.size);
+            writeShort(this.centralDirectory, name.length);
+            // extra field, comment, disk number, internal and external attributes
+            writeShort(this.centralDirectory, 0);
+            writeShort(this.centralDirectory, 0);
+            writeShort(this.centralDirectory, 0);
+            writeShort(this.centralDirectory, 0);
+            writeInt(this.centralDirectory, 0);
+            writeInt(this.centralDirectory, offset);
+            this.centralDirectory.write(name);
+            this.entryCount++;
+            // the entry is on the output, only its central directory record is kept
+            part.compressed = null;
+        }
+
+        private void finish() throws IOException {
+            long offset = this.written;
+            if (offset > 0xFFFFFFFFL) throw new IOException("zip file is too large");
+            this.centralDirectory.writeTo(this.out);
+
+            ByteArrayOutputStream end = new ByteArrayOutputStream(22);
+            writeInt(end, END_SIG);
+            writeShort(end, 0);
+            writeShort(end, 0);
+            writeShort(end, this.entryCount);
+            writeShort(end, this.entryCount);
+            writeInt(end, this.centralDirectory.size());
+            writeInt(end, offset);
+            writeShort(end, 0);
+            end.writeTo(this.out);
+        }
+
+        private static long dosTime(long time) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(time);
+            int year = calendar.get(Calendar.YEAR);
+            if (year < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return (year - 1980L) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                    | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 | calendar.get(Calendar.SECOND) >> 1;
+        }
+
+        private static void writeShort(ByteArrayOutputStream out, int value) {
+            out.write(value & 0xFF);
+            out.write((value >>> 8) & 0xFF);
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, long value) {
+            out.write((int) (value & 0xFF));
+            out.write((int) ((value >>> 8) & 0xFF));
+            out.write((int) ((value >>> 16) & 0xFF));
+            out.write((int) ((value >>> 24) & 0xFF));
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package lnd.excel.functioninterface;
+
+/**
+ * @author linhnguyendinh
+ */
+@FunctionalInterface
+public interface S<T> {
+    T get() throws Exception;
+}
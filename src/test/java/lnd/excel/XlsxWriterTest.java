@@ -0,0 +1,136 @@
+package lnd.excel;
+
+import junit.framework.TestCase;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * round trip of {@link XlsxWriter}: the zip is readable (local headers and central directory),
+ * the entries are in order and the workbook reads back the same content
+ *
+ * @author linhnguyendinh
+ */
+public class XlsxWriterTest extends TestCase {
+
+    private static final int SHEETS = 20;
+    private static final int ROWS = 200;
+
+    public void testWrite() throws Exception {
+        this.assertRoundTrip(this.write(null, 0));
+    }
+
+    public void testWriteOnePending() throws Exception {
+        // POI waits for each part to be deflated and written before the next one
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            this.assertRoundTrip(this.write(executor, 1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private byte[] write(ExecutorService executor, int maxPending) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+            for (int s = 0; s < SHEETS; s++) {
+                Sheet sheet = workbook.createSheet("sheet " + s);
+                for (int r = 0; r < ROWS; r++) {
+                    Row row = sheet.createRow(r);
+                    row.createCell(0).setCellValue("text " + s + "-" + r);
+                    row.createCell(1).setCellValue(s * 1000 + r);
+                }
+            }
+            if (executor == null) {
+                XlsxWriter.write(workbook, out);
+            } else {
+                XlsxWriter.write(workbook, out, executor, maxPending);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void assertRoundTrip(byte[] xlsx) throws Exception {
+        // local headers: ZipInputStream checks the size and the CRC of each entry
+        List<String> streamNames = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(xlsx))) {
+            ZipEntry entry;
+            byte[] buffer = new byte[8192];
+            while ((entry = zip.getNextEntry()) != null) {
+                streamNames.add(entry.getName());
+                while (zip.read(buffer) != -1) {
+                    // read the whole entry
+                }
+            }
+        }
+
+        // central directory: ZipFile reads the entries from it
+        List<String> centralNames = new ArrayList<>();
+        File file = File.createTempFile("xlsx-writer", ".xlsx");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(xlsx);
+            }
+            try (ZipFile zipFile = new ZipFile(file)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    centralNames.add(entry.getName());
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        byte[] buffer = new byte[8192];
+                        while (in.read(buffer) != -1) {
+                            // read the whole entry
+                        }
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+        assertEquals(streamNames, centralNames);
+
+        // styles, shared strings then the workbook parts are written last
+        int count = streamNames.size();
+        assertTrue(count > SHEETS + 4);
+        assertEquals("xl/styles.xml", streamNames.get(count - 4));
+        assertEquals("xl/sharedStrings.xml", streamNames.get(count - 3));
+        assertEquals(new HashSet<>(Arrays.asList("xl/workbook.xml", "xl/_rels/workbook.xml.rels")),
+                new HashSet<>(streamNames.subList(count - 2, count)));
+        for (int s = 1; s <= SHEETS; s++) {
+            assertTrue(streamNames.indexOf("xl/worksheets/sheet" + s + ".xml") >= 0);
+            assertTrue(streamNames.indexOf("xl/worksheets/sheet" + s + ".xml") < count - 4);
+        }
+
+        // content
+        try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(xlsx))) {
+            assertEquals(SHEETS, workbook.getNumberOfSheets());
+            for (int s = 0; s < SHEETS; s++) {
+                Sheet sheet = workbook.getSheetAt(s);
+                assertEquals("sheet " + s, sheet.getSheetName());
+                assertEquals(ROWS - 1, sheet.getLastRowNum());
+                for (int r = 0; r < ROWS; r++) {
+                    Row row = sheet.getRow(r);
+                    assertEquals("text " + s + "-" + r, row.getCell(0).getStringCellValue());
+                    assertEquals((double) (s * 1000 + r), row.getCell(1).getNumericCellValue(), 0);
+                }
+            }
+        }
+    }
+}